@@ -0,0 +1,210 @@
+package com.kaazing.operations;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Process several bucket/root pairs in one process. All of them share one S3 client (and so one connection pool), one
+ * {@link S3RequestThrottle} and one thread pool, and a combined summary is logged at the end.
+ *
+ * The batch file has one pair per line, written with the same options as the command line. Values with spaces in them can
+ * be wrapped in single or double quotes. Everything from a # at the start of a word to the end of the line is a comment. e.g.
+ *
+ * <pre>
+ * # Public releases
+ * --bucket cdn.example.com --root public/releases --index --max-age-index 60
+ * --bucket downloads.example.com --root "nightly builds" --index --index-filename listing.html # Moved in 2016
+ * </pre>
+ */
+public class S3BatchListing {
+
+	private final Logger logger = Logger.getLogger(S3BatchListing.class);
+
+	private final String batchFilename;
+
+	private final AmazonS3 s3client;
+
+	private final S3RequestThrottle throttle;
+
+	/**
+	 * Number of bucket/root pairs processed at the same time.
+	 */
+	private final int parallelism;
+
+	public S3BatchListing(String batchFilename, AmazonS3 s3client, S3RequestThrottle throttle, int parallelism) {
+		this.batchFilename = batchFilename;
+		this.s3client = s3client;
+		this.throttle = throttle;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Read the batch file, process every bucket/root pair in it, and log the summary.
+	 */
+	public void run() {
+		List<S3DirectoryListing> listings = readBatchFile();
+		if (listings == null) {
+			return;
+		}
+
+		logger.info(String.format("Processing %d roots from %s, %d at a time", listings.size(), batchFilename, parallelism));
+
+		long start = System.currentTimeMillis();
+		ExecutorService scheduler = Executors.newFixedThreadPool(Math.max(1, parallelism));
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (S3DirectoryListing listing : listings) {
+			results.add(scheduler.submit(listing::run));
+		}
+		scheduler.shutdown();
+
+		for (int i = 0; i < results.size(); i++) {
+			S3DirectoryListing listing = listings.get(i);
+			try {
+				results.get(i).get();
+			} catch (ExecutionException e) {
+				logger.error(String.format("Error processing %s/%s", listing.getBucket(), listing.getRootFolder()), e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.error("Interrupted while waiting for the batch to finish");
+				scheduler.shutdownNow();
+				return;
+			}
+		}
+
+		printSummary(listings, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Turn each line of the batch file into a listing. Returns null if the file can't be read or any line is invalid, so
+	 * nothing is half done.
+	 */
+	private List<S3DirectoryListing> readBatchFile() {
+		List<S3DirectoryListing> listings = new ArrayList<S3DirectoryListing>();
+		boolean valid = true;
+
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(batchFilename), StandardCharsets.UTF_8))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				List<String> args = split(line);
+				if (args == null) {
+					logger.error(String.format("Unclosed quote on line %d of %s: %s", lineNumber, batchFilename, line));
+					valid = false;
+					continue;
+				}
+				if (args.isEmpty()) {
+					continue;
+				}
+
+				S3DirectoryListing listing = new S3DirectoryListing(s3client, throttle);
+				if (listing.parseCommandLine(args.toArray(new String[args.size()]), false)) {
+					listings.add(listing);
+				} else {
+					logger.error(String.format("Invalid entry on line %d of %s: %s", lineNumber, batchFilename, line));
+					valid = false;
+				}
+			}
+		} catch (IOException e) {
+			logger.error(String.format("Error reading %s", batchFilename), e);
+			return null;
+		}
+
+		if (!valid) {
+			return null;
+		}
+
+		if (listings.isEmpty()) {
+			logger.info(String.format("%s doesn't list any roots", batchFilename));
+			return null;
+		}
+
+		return listings;
+	}
+
+	/**
+	 * Split a line of the batch file into words, like a shell would. Quotes group words with spaces in them, and a # at the
+	 * start of a word comments out the rest of the line. Returns null if a quote isn't closed.
+	 */
+	static List<String> split(String line) {
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = null;
+		char quote = 0;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				} else {
+					word.append(c);
+				}
+			} else if (Character.isWhitespace(c)) {
+				if (word != null) {
+					words.add(word.toString());
+					word = null;
+				}
+			} else if (c == '#' && word == null) {
+				break;
+			} else {
+				if (word == null) {
+					word = new StringBuilder();
+				}
+				if (c == '"' || c == '\'') {
+					quote = c;
+				} else {
+					word.append(c);
+				}
+			}
+		}
+		if (quote != 0) {
+			return null;
+		}
+		if (word != null) {
+			words.add(word.toString());
+		}
+		return words;
+	}
+
+	/**
+	 * Log one line per root and the totals across the batch.
+	 */
+	private void printSummary(List<S3DirectoryListing> listings, long elapsedMillis) {
+		long folders = 0;
+		long files = 0;
+		long indexFiles = 0;
+		long errors = 0;
+
+		logger.info("");
+		logger.info("Batch Summary");
+		logger.info("Root, folders, files, index files uploaded, errors, seconds");
+		logger.info("----------------------------------------");
+		for (S3DirectoryListing listing : listings) {
+			logger.info(String.format("%s/%s, %d, %d, %d, %d, %.1f", listing.getBucket(), listing.getRootFolder(),
+					listing.getFolderCount(), listing.getFilesFound(), listing.getIndexFilesUploaded(), listing.getErrors(),
+					listing.getElapsedMillis() / 1000.0));
+			folders += listing.getFolderCount();
+			files += listing.getFilesFound();
+			indexFiles += listing.getIndexFilesUploaded();
+			errors += listing.getErrors();
+		}
+		logger.info("----------------------------------------");
+		logger.info(String.format("Total: %d roots, %d, %d, %d, %d, %.1f", listings.size(), folders, files, indexFiles, errors,
+				elapsedMillis / 1000.0));
+		logger.info(String.format("S3 requests: %d, throttled: %d", throttle.getRequestCount(), throttle.getThrottledCount()));
+	}
+
+}
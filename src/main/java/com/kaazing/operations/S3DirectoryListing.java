@@ -20,6 +20,7 @@ import org.apache.log4j.Logger;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
@@ -44,6 +45,12 @@ public class S3DirectoryListing {
 	private String cssFilename = "index.css";
 	private String folderIconFilename = "folder-icon.png";
 	private String folderUpIconFilename = "folder-up-icon.png";
+	private String searchScriptFilename = "search.js";
+
+	/**
+	 * Folder under the root that holds the search index shards. It is left out of the listing and the index files.
+	 */
+	private String searchFolderName = "_search/";
 
 	private Level logLevel = Level.INFO;
 
@@ -63,19 +70,106 @@ public class S3DirectoryListing {
 
 	private AmazonS3 s3client;
 
+	/**
+	 * Maximum number of S3 requests in flight at once.
+	 */
+	private int maxConcurrency = 8;
+
+	/**
+	 * Every list, head, put and delete request goes through this, so S3 throttling slows us down instead of dropping folders.
+	 */
+	private S3RequestThrottle throttle;
+
+	/**
+	 * File listing one bucket/root pair per line. When set, every pair is processed in this process. See
+	 * {@link S3BatchListing}.
+	 */
+	private String batchFilename;
+
+	/**
+	 * Number of bucket/root pairs processed at the same time in batch mode.
+	 */
+	private int parallelism = 4;
+
 	private TreeMap<String, S3Folder> folders = new TreeMap<String, S3Folder>();
 
+	/**
+	 * When streaming, the tree is built with this instead of {@link #folders}, and each folder's index file is uploaded as
+	 * soon as the folder is complete. Only the folders on the path to the current key are held in memory.
+	 */
+	private boolean streaming = false;
+	private S3FolderStack folderStack;
+
+	/**
+	 * When searching, every file is also added to this while the tree is built, and the shards are uploaded at the end.
+	 */
+	private boolean searching = false;
+	private S3SearchIndex searchIndex;
+
+	/**
+	 * ETags of the search index files already in the bucket, by filename within the search folder. Used to skip uploading
+	 * shards that haven't changed.
+	 */
+	private HashMap<String, String> searchShardETags = new HashMap<String, String>();
+
+	// Counters for the summary at the end of a batch run.
+	private long filesFound = 0;
+	private long indexFilesUploaded = 0;
+	private long errors = 0;
+	private long elapsedMillis = 0;
+
 	public static void main(String[] args) {
 		new S3DirectoryListing(args);
 	}
 
 	public S3DirectoryListing(String[] args) {
-		if (!parseCommandLine(args)) {
+		if (!parseCommandLine(args, true)) {
 			return;
 		}
 		LogManager.getRootLogger().setLevel(logLevel);
 
-		readS3RootFolder();
+		final BasicAWSCredentials awsCreds = new BasicAWSCredentials(key, secret);
+		// S3RequestThrottle retries throttling and transient errors itself. Retries inside the SDK would hide throttling
+		// from it.
+		s3client = new AmazonS3Client(awsCreds,
+				new ClientConfiguration().withMaxConnections(maxConcurrency).withMaxErrorRetry(0));
+		throttle = new S3RequestThrottle(maxConcurrency);
+
+		if (batchFilename != null) {
+			new S3BatchListing(batchFilename, s3client, throttle, parallelism).run();
+		} else {
+			run();
+		}
+
+		logger.info("\nDone");
+	}
+
+	/**
+	 * Create a listing for one bucket/root pair of a batch run. The client and throttle are shared with the rest of the batch.
+	 * {@link #parseCommandLine(String[], boolean)} must be called before {@link #run()}.
+	 */
+	S3DirectoryListing(AmazonS3 s3client, S3RequestThrottle throttle) {
+		this.s3client = s3client;
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Read the root folder, then either upload the index files or print the directory listing.
+	 */
+	void run() {
+		long start = System.currentTimeMillis();
+
+		if (searching) {
+			searchIndex = new S3SearchIndex();
+		}
+
+		if (streaming) {
+			runStreaming();
+			elapsedMillis = System.currentTimeMillis() - start;
+			return;
+		}
+
+		boolean listed = readS3RootFolder();
 
 		if (folders.size() == 0) {
 			logger.info(String.format("Could not find %s/%s", bucket, rootFolder));
@@ -85,16 +179,56 @@ public class S3DirectoryListing {
 			if (indexing) {
 				generateIndexFiles();
 				uploadResourceFiles();
+				// An incomplete listing would delete the shards of the files it missed.
+				if (searching && listed) {
+					uploadSearchIndex();
+				}
 			} else {
 				printDirectoryList(folders.get("/"));
 			}
 			
 		}
 
-		logger.info("\nDone");
+		elapsedMillis = System.currentTimeMillis() - start;
 	}
 
-	private boolean parseCommandLine(String[] args) {
+	/**
+	 * Read the root folder and upload each folder's index file as soon as the listing has moved past it.
+	 */
+	private void runStreaming() {
+		logger.info("");
+		folderStack = new S3FolderStack(folder -> indexFolder(folder));
+
+		boolean listed = readS3RootFolder();
+
+		if (folderStack.getFolderCount() == 0) {
+			logger.info(String.format("Could not find %s/%s", bucket, rootFolder));
+			logger.info("Are the bucket name and folder name correct?");
+			return;
+		}
+
+		// If the listing failed part way, the folders still open are missing some of their contents. Don't overwrite their
+		// index files with incomplete ones.
+		if (listed) {
+			folderStack.finish();
+			if (searching) {
+				uploadSearchIndex();
+			}
+		} else {
+			logger.info("Listing did not complete, skipping the index files of the remaining folders");
+		}
+
+		uploadResourceFiles();
+	}
+
+	/**
+	 * Parse the command line into this listing's settings.
+	 *
+	 * @param standalone
+	 *            true for a normal run, which needs credentials and a bucket. false for one line of a batch file, which
+	 *            shares the batch's credentials and must not start another batch.
+	 */
+	boolean parseCommandLine(String[] args, boolean standalone) {
 
 		CommandLineParser parser = new DefaultParser();
 
@@ -112,6 +246,18 @@ public class S3DirectoryListing {
 		options.addOption("l", "log-level", true, "Logging level: fatal, error, warn, info (default), debug, trace");
 		options.addOption("i", "index", false,
 				"Upload index files to make the S3 folders browsable\nWARNING: This will override existing index.html files in every directory!");
+		options.addOption("x", "search", false,
+				"Also upload a sharded search index of all file names, and add a search box to the index files.\n"
+						+ "Ignored if -i is not set");
+		options.addOption("f", "index-filename", true, "Name of the index file uploaded to each folder. Default is " + indexFilename);
+		options.addOption("c", "batch", true,
+				"File listing one bucket/root pair per line, each with its own options, e.g. --bucket b --root r --index.\n"
+						+ "All pairs are processed in one process with a shared S3 connection pool");
+		options.addOption("p", "parallel", true,
+				"Number of bucket/root pairs processed at the same time. Default is " + parallelism + "\nIgnored if -c is not set");
+		options.addOption("t", "stream", false,
+				"Upload each index file while listing, holding only the folders on the current path in memory.\n"
+						+ "Use for buckets too large for the heap. Ignored if -i is not set");
 		options.addOption("?", "help", false, "Show usage help");
 
 		try {
@@ -123,6 +269,35 @@ public class S3DirectoryListing {
 				return false;
 			}
 
+			// These apply to the whole batch, so a batch line can't set them. Ignoring them would quietly run the line with
+			// different credentials or settings than it asks for.
+			if (!standalone) {
+				for (String option : new String[] { "key", "secret", "log-level", "parallel", "batch" }) {
+					if (line.hasOption(option)) {
+						logger.error(String.format("--%s can only be given on the command line, not in a batch file!", option));
+						return false;
+					}
+				}
+				// Anything that isn't an option, e.g. an unquoted value with a space in it, would be ignored too.
+				if (!line.getArgList().isEmpty()) {
+					logger.error(String.format("Unexpected arguments: %s", line.getArgList()));
+					return false;
+				}
+			}
+
+			// And the other way round: in batch mode each line sets its own root, so these would be silently dropped.
+			if (standalone && line.hasOption("batch")) {
+				for (String option : new String[] { "bucket", "root", "max-age-index", "max-age-resources", "index",
+						"index-filename", "stream", "search" }) {
+					if (line.hasOption(option)) {
+						logger.error(
+								String.format("--%s can't be used with --batch, put it on the lines of the batch file!", option));
+						showUsage(options);
+						return false;
+					}
+				}
+			}
+
 			if (line.hasOption("key")) {
 				key = line.getOptionValue("key").trim();
 			}
@@ -198,14 +373,58 @@ public class S3DirectoryListing {
 				indexing = true;
 			}
 
+			if (line.hasOption("search")) {
+				searching = true;
+			}
+
+			if (line.hasOption("stream")) {
+				streaming = true;
+			}
+
+			if (line.hasOption("index-filename")) {
+				indexFilename = line.getOptionValue("index-filename").trim();
+			}
+
+			if (line.hasOption("batch")) {
+				batchFilename = line.getOptionValue("batch").trim();
+			}
+
+			if (line.hasOption("parallel")) {
+				try {
+					parallelism = Integer.valueOf(line.getOptionValue("parallel").trim());
+				} catch (NumberFormatException e) {
+					logger.info(String.format("You specified an invalid value for parallel. Using default of %d", parallelism));
+				}
+			}
+
 		} catch (ParseException exp) {
 			logger.error(String.format("Unexpected exception: %s", exp.getMessage()));
 			showUsage(options);
 			return false;
 		}
 
+		// Streaming uploads index files as it goes. A plain listing needs the whole tree to print it in order. The search box
+		// lives in the index files, so there is nothing to search from without them.
+		if (!indexing) {
+			streaming = false;
+			searching = false;
+		}
+
+		if (streaming && searching) {
+			logger.warn("--search keeps every file name in memory, so memory use with --stream is no longer bounded by the "
+					+ "folder fan-out");
+		}
+
 		// Make sure we've got all the parameters we need.
 
+		if (!standalone) {
+			if (bucket == null) {
+				logger.error("You didn't supply a bucket!");
+				return false;
+			}
+			return true;
+		}
+
 		if (key == null) {
 			logger.error("You didn't supply a key!");
 			showUsage(options);
@@ -218,7 +437,7 @@ public class S3DirectoryListing {
 			return false;
 		}
 
-		if (bucket == null) {
+		if (bucket == null && batchFilename == null) {
 			logger.error("You didn't supply a bucket!");
 			showUsage(options);
 			return false;
@@ -246,16 +465,22 @@ public class S3DirectoryListing {
 		System.out.println("      --secret XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX");
 		System.out.println("      --bucket cdn.example.com");
 		System.out.println("      --root public/releases");
+		System.out.println("");
+		System.out.println("Batch example:");
+		System.out.println("");
+		System.out.println("  s3-directory-listing");
+		System.out.println("      --key XXXXXXXXXXXXXXXXXXXX");
+		System.out.println("      --secret XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX");
+		System.out.println("      --batch roots.txt");
 	}
 
 	/**
 	 * Connect to S3, read the root folder and all of its sub-folders, and build up a data structure of all the folders and file
 	 * details.
+	 *
+	 * @return true if every key under the root folder was read, false if the listing stopped part way
 	 */
-	public void readS3RootFolder() {
-
-		final BasicAWSCredentials awsCreds = new BasicAWSCredentials(key, secret);
-		s3client = new AmazonS3Client(awsCreds);
+	public boolean readS3RootFolder() {
 
 		logger.info(String.format("Scanning %s/%s...", bucket, rootFolder));
 
@@ -264,18 +489,32 @@ public class S3DirectoryListing {
 					.withMaxKeys(5);
 			ListObjectsV2Result result;
 			do {
-				result = s3client.listObjectsV2(req);
+				result = throttle.execute(bucket, rootFolder, () -> s3client.listObjectsV2(req));
 
 				for (S3ObjectSummary objectSummary : result.getObjectSummaries()) {
 					logger.debug(String.format("Found key: %s", objectSummary.getKey()));
 
+					// When searching, the search index is ours, not part of the listing. Just note what's there so unchanged
+					// shards aren't uploaded again.
+					if (searching && objectSummary.getKey().startsWith(rootFolder + searchFolderName)) {
+						searchShardETags.put(objectSummary.getKey().substring((rootFolder + searchFolderName).length()),
+								objectSummary.getETag());
+						continue;
+					}
+
 					// Is this key a folder or file?
 					if (objectSummary.getKey().substring(objectSummary.getKey().length() - 1).equals("/")) {
-						S3Folder folder = addFolder(objectSummary.getKey());
+						S3Folder folder = streaming ? folderStack.enter(objectSummary.getKey())
+								: addFolder(objectSummary.getKey());
 						logger.trace(String.format("Reading folder: %s", folder.getPath()));
 					} else {
-						ObjectMetadata om = s3client.getObjectMetadata(bucket, objectSummary.getKey());
+						ObjectMetadata om = throttle.execute(bucket, objectSummary.getKey(),
+								() -> s3client.getObjectMetadata(bucket, objectSummary.getKey()));
 						S3File file = new S3File(objectSummary.getKey(), om);
+						filesFound++;
+						if (searchIndex != null && !isResourceFile(file)) {
+							searchIndex.addFile(file);
+						}
 						logger.trace(String.format("Reading file:   %s", file.getPath()));
 						// Extract the folder name holding this file. Handle special case if the parent is the root.
 						int pos = objectSummary.getKey().lastIndexOf('/');
@@ -285,7 +524,7 @@ public class S3DirectoryListing {
 						} else {
 							folderName = objectSummary.getKey().substring(0, pos + 1);
 						}
-						S3Folder folder = addFolder(folderName);
+						S3Folder folder = streaming ? folderStack.enter(folderName) : addFolder(folderName);
 						folder.addFile(file);
 					}
 
@@ -296,6 +535,7 @@ public class S3DirectoryListing {
 			} while (result.isTruncated() == true);
 
 		} catch (AmazonServiceException ase) {
+			errors++;
 			logger.info("Caught an AmazonServiceException, " + "which means your request made it "
 					+ "to Amazon S3, but was rejected with an error response " + "for some reason.");
 			logger.info("Error Message:    " + ase.getMessage());
@@ -303,13 +543,17 @@ public class S3DirectoryListing {
 			logger.info("AWS Error Code:   " + ase.getErrorCode());
 			logger.info("Error Type:       " + ase.getErrorType());
 			logger.info("Request ID:       " + ase.getRequestId());
+			return false;
 		} catch (AmazonClientException ace) {
+			errors++;
 			logger.info("Caught an AmazonClientException, " + "which means the client encountered "
 					+ "an internal error while trying to communicate" + " with S3, "
 					+ "such as not being able to access the network.");
 			logger.info("Error Message: " + ace.getMessage());
+			return false;
 		}
 
+		return true;
 	}
 
 	/**
@@ -355,14 +599,20 @@ public class S3DirectoryListing {
 	private void generateIndexFiles() {
 		logger.info("");
 		for (Entry<String, S3Folder> entry : folders.entrySet()) {
-			S3Folder folder = entry.getValue();
-			if (folder.getPath().equals("/")) {
-				// Root is a special case, ignore it
-				continue;
-			}
-			logger.info(String.format("Uploading index file for %s", folder.getPath()));
-			uploadIndexFile(folder);
+			indexFolder(entry.getValue());
+		}
+	}
+
+	/**
+	 * Upload the index.html file for a single folder.
+	 */
+	private void indexFolder(S3Folder folder) {
+		if (folder.getPath().equals("/")) {
+			// Root is a special case, ignore it
+			return;
 		}
+		logger.info(String.format("Uploading index file for %s", folder.getPath()));
+		uploadIndexFile(folder);
 	}
 
 	/**
@@ -374,15 +624,17 @@ public class S3DirectoryListing {
 			String indexFile = createIndexFile(folder);
 
 			byte[] bytes = indexFile.toString().getBytes(StandardCharsets.UTF_8);
-			InputStream is = new ByteArrayInputStream(bytes);
 			ObjectMetadata om = new ObjectMetadata();
 			om.setContentType("text/html");
 			om.setContentLength(bytes.length);
 			om.setCacheControl("max-age=" + indexMaxAge);
 			String keyname = folder.getPath() + indexFilename;
-			PutObjectRequest request = new PutObjectRequest(bucket, keyname, is, om);
-			s3client.putObject(request);
+			// Build a fresh stream for every attempt, in case a throttled request already consumed it.
+			throttle.execute(bucket, keyname,
+					() -> s3client.putObject(new PutObjectRequest(bucket, keyname, new ByteArrayInputStream(bytes), om)));
+			indexFilesUploaded++;
 		} catch (AmazonServiceException ase) {
+			errors++;
 			logger.info("Caught an AmazonServiceException, which " + "means your request made it "
 					+ "to Amazon S3, but was rejected with an error response" + " for some reason.");
 			logger.info("Error Message:    " + ase.getMessage());
@@ -391,6 +643,7 @@ public class S3DirectoryListing {
 			logger.info("Error Type:       " + ase.getErrorType());
 			logger.info("Request ID:       " + ase.getRequestId());
 		} catch (AmazonClientException ace) {
+			errors++;
 			logger.info("Caught an AmazonClientException, which " + "means the client encountered "
 					+ "an internal error while trying to " + "communicate with S3, "
 					+ "such as not being able to access the network.");
@@ -418,6 +671,13 @@ public class S3DirectoryListing {
 
 		sb.append(String.format("<h1>%s</h1>", folder.getPath()));
 
+		if (searching) {
+			sb.append("<div id=\"search\">");
+			sb.append("  <input id=\"search-box\" type=\"search\" placeholder=\"Search all files\" autocomplete=\"off\">");
+			sb.append("  <ul id=\"search-results\"></ul>");
+			sb.append("</div>");
+		}
+
 		sb.append(String.format(""));
 		sb.append(String.format("<table id=\"list\">"));
 		sb.append(String.format("  <thead>"));
@@ -463,19 +723,12 @@ public class S3DirectoryListing {
 
 		// Certain files will get stored in the root folder, such as the CSS file and icon images. They should not appear in the
 		// directory listing and will be excluded. Also, the index.html file in each folder should not be displayed.
-		final HashMap<String, String> rootExcludeList = new HashMap<String, String>();
-
-		rootExcludeList.put(indexFilename, indexFilename);
-		rootExcludeList.put(cssFilename, cssFilename);
-		rootExcludeList.put(folderIconFilename, folderIconFilename);
-		rootExcludeList.put(folderUpIconFilename, folderUpIconFilename);
-
 		for (Entry<String, S3File> fileEntry : folder.getFiles().entrySet()) {
 
 			S3File file = fileEntry.getValue();
 
 			// Don't show excluded files
-			if (rootExcludeList.containsKey(file.getFilename())) {
+			if (isResourceFile(file)) {
 				logger.trace(String.format("Excluding %s", file.getFilename()));
 				continue;
 			}
@@ -496,6 +749,10 @@ public class S3DirectoryListing {
 		sb.append(String.format("  </tbody>"));
 		sb.append(String.format("</table>"));
 		sb.append("");
+		if (searching) {
+			sb.append("<script src=\"//" + bucket + "/" + rootFolder + searchScriptFilename + "\" data-base=\"//" + bucket
+					+ "/\" data-index=\"//" + bucket + "/" + rootFolder + searchFolderName + "\"></script>");
+		}
 		sb.append("</body>");
 		sb.append("");
 		sb.append("</html>");
@@ -510,6 +767,105 @@ public class S3DirectoryListing {
 		uploadResourceFile(cssFilename, "text/css", resourcesMaxAge);
 		uploadResourceFile(folderIconFilename, "image/png", resourcesMaxAge);
 		uploadResourceFile(folderUpIconFilename, "image/png", resourcesMaxAge);
+		if (searching) {
+			uploadResourceFile(searchScriptFilename, "application/javascript", resourcesMaxAge);
+		}
+	}
+
+	/**
+	 * Is this one of the files we put in every folder or in the root? They aren't shown in the listing or searchable.
+	 */
+	private boolean isResourceFile(S3File file) {
+		// The search script is only ours if we put it there, and we only put it in the root.
+		if (searching && file.getPath().equals(rootFolder + searchScriptFilename)) {
+			return true;
+		}
+		String filename = file.getFilename();
+		return filename.equals(indexFilename) || filename.equals(cssFilename) || filename.equals(folderIconFilename)
+				|| filename.equals(folderUpIconFilename);
+	}
+
+	/**
+	 * Upload the search index shards that have changed since the last run, and delete the ones no longer needed.
+	 */
+	private void uploadSearchIndex() {
+		logger.info("");
+		final String folder = rootFolder + searchFolderName;
+		S3SearchIndex.UploadResult result = searchIndex.upload(searchShardETags, new S3SearchIndex.Store() {
+			@Override
+			public boolean put(String filename, byte[] content) {
+				logger.debug(String.format("Uploading search index file %s%s", folder, filename));
+				return uploadSearchShard(folder + filename, content);
+			}
+
+			@Override
+			public boolean delete(String filename) {
+				logger.debug(String.format("Deleting search index file %s%s", folder, filename));
+				return deleteSearchShard(folder + filename);
+			}
+		});
+		logger.info(String.format("Search index: %d files uploaded, %d unchanged, %d deleted, %d failed", result.getUploaded(),
+				result.getUnchanged(), result.getDeleted(), result.getFailed()));
+	}
+
+	/**
+	 * Upload one search index file. Returns false if it failed.
+	 */
+	private boolean uploadSearchShard(String keyname, byte[] bytes) {
+		try {
+			ObjectMetadata om = new ObjectMetadata();
+			om.setContentType("application/json");
+			om.setContentLength(bytes.length);
+			om.setCacheControl("max-age=" + indexMaxAge);
+			throttle.execute(bucket, keyname,
+					() -> s3client.putObject(new PutObjectRequest(bucket, keyname, new ByteArrayInputStream(bytes), om)));
+			return true;
+		} catch (AmazonServiceException ase) {
+			errors++;
+			logger.info("Caught an AmazonServiceException, which " + "means your request made it "
+					+ "to Amazon S3, but was rejected with an error response" + " for some reason.");
+			logger.info("Error Message:    " + ase.getMessage());
+			logger.info("HTTP Status Code: " + ase.getStatusCode());
+			logger.info("AWS Error Code:   " + ase.getErrorCode());
+			logger.info("Error Type:       " + ase.getErrorType());
+			logger.info("Request ID:       " + ase.getRequestId());
+		} catch (AmazonClientException ace) {
+			errors++;
+			logger.info("Caught an AmazonClientException, which " + "means the client encountered "
+					+ "an internal error while trying to " + "communicate with S3, "
+					+ "such as not being able to access the network.");
+			logger.info("Error Message: " + ace.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * Delete a search index shard that is no longer needed. Returns false if it failed.
+	 */
+	private boolean deleteSearchShard(String keyname) {
+		try {
+			throttle.execute(bucket, keyname, () -> {
+				s3client.deleteObject(bucket, keyname);
+				return null;
+			});
+			return true;
+		} catch (AmazonServiceException ase) {
+			errors++;
+			logger.info("Caught an AmazonServiceException, which " + "means your request made it "
+					+ "to Amazon S3, but was rejected with an error response" + " for some reason.");
+			logger.info("Error Message:    " + ase.getMessage());
+			logger.info("HTTP Status Code: " + ase.getStatusCode());
+			logger.info("AWS Error Code:   " + ase.getErrorCode());
+			logger.info("Error Type:       " + ase.getErrorType());
+			logger.info("Request ID:       " + ase.getRequestId());
+		} catch (AmazonClientException ace) {
+			errors++;
+			logger.info("Caught an AmazonClientException, which " + "means the client encountered "
+					+ "an internal error while trying to " + "communicate with S3, "
+					+ "such as not being able to access the network.");
+			logger.info("Error Message: " + ace.getMessage());
+		}
+		return false;
 	}
 
 	/**
@@ -527,14 +883,17 @@ public class S3DirectoryListing {
 			ObjectMetadata om = new ObjectMetadata();
 			om.setContentType(contentType);
 			om.setContentLength(is.available());
+			is.close();
 			if (maxAge >= 0) {
 				om.setCacheControl("max-age=" + maxAge);
 			}
 
-			PutObjectRequest request = new PutObjectRequest(bucket, keyname, is, om);
-			s3client.putObject(request);
+			// Open a fresh stream for every attempt, in case a throttled request already consumed it.
+			throttle.execute(bucket, keyname, () -> s3client.putObject(new PutObjectRequest(bucket, keyname,
+					getClass().getClassLoader().getResourceAsStream(filename), om)));
 
 		} catch (AmazonServiceException ase) {
+			errors++;
 			logger.info("Caught an AmazonServiceException, which " + "means your request made it "
 					+ "to Amazon S3, but was rejected with an error response" + " for some reason.");
 			logger.info("Error Message:    " + ase.getMessage());
@@ -543,16 +902,46 @@ public class S3DirectoryListing {
 			logger.info("Error Type:       " + ase.getErrorType());
 			logger.info("Request ID:       " + ase.getRequestId());
 		} catch (AmazonClientException ace) {
+			errors++;
 			logger.info("Caught an AmazonClientException, which " + "means the client encountered "
 					+ "an internal error while trying to " + "communicate with S3, "
 					+ "such as not being able to access the network.");
 			logger.info("Error Message: " + ace.getMessage());
 		} catch (IOException e) {
+			errors++;
 			e.printStackTrace();
 			logger.error(String.format("Error reading %s", filename), e);
 		}
 	}
 
+	public String getBucket() {
+		return bucket;
+	}
+
+	public String getRootFolder() {
+		return rootFolder;
+	}
+
+	public int getFolderCount() {
+		return folderStack != null ? folderStack.getFolderCount() : folders.size();
+	}
+
+	public long getFilesFound() {
+		return filesFound;
+	}
+
+	public long getIndexFilesUploaded() {
+		return indexFilesUploaded;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
 	/**
 	 * Write out the directory structure, starting from the given root.
 	 */
@@ -58,6 +58,14 @@ public class S3Folder {
 		return folders;
 	}
 
+	/**
+	 * Drop the child folders and files, e.g. once the index for this folder has been generated.
+	 */
+	public void clear() {
+		folders.clear();
+		files.clear();
+	}
+
 	/**
 	 * Get just the folder name itself, without the parent path
 	 */
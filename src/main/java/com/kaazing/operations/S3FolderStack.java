@@ -0,0 +1,100 @@
+package com.kaazing.operations;
+
+import java.util.ArrayDeque;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Builds the folder tree from keys that arrive in sorted order, which is how S3 lists them. Only the folders on the path to
+ * the current key are kept. All keys under a folder are listed together, so as soon as a key falls outside a folder, that
+ * folder is complete. It is handed to the listener and its contents are dropped. Memory is bounded by the depth and fan-out
+ * of the tree, not by the total number of objects.
+ */
+public class S3FolderStack {
+
+	/**
+	 * Called once for every folder, children before their parents, when no more keys can arrive for it.
+	 */
+	public interface FolderListener {
+		void folderComplete(S3Folder folder);
+	}
+
+	private final Logger logger = Logger.getLogger(S3FolderStack.class);
+
+	private final FolderListener listener;
+
+	/**
+	 * The open folders, from the root at the bottom to the folder of the current key at the top.
+	 */
+	private final ArrayDeque<S3Folder> stack = new ArrayDeque<S3Folder>();
+
+	private int folderCount = 0;
+
+	public S3FolderStack(FolderListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Move to the given folder, completing every open folder that isn't one of its parents, and creating any of its parents
+	 * that haven't been seen yet. Folder paths must arrive in sorted order.
+	 *
+	 * @param folderName
+	 *            the folder path with a trailing slash, or / for the root
+	 */
+	public S3Folder enter(String folderName) {
+		if (stack.isEmpty()) {
+			push(null, "/");
+		}
+
+		// Close the folders we have moved out of. The root is never closed here.
+		String prefix = folderName.equals("/") ? "" : folderName;
+		while (stack.size() > 1 && !prefix.startsWith(stack.peek().getPath())) {
+			complete(stack.pop());
+		}
+
+		// Open the folders we have moved into.
+		S3Folder top = stack.peek();
+		int start = top.getPath().equals("/") ? 0 : top.getPath().length();
+		int slash;
+		while ((slash = prefix.indexOf('/', start)) != -1) {
+			top = push(top, prefix.substring(0, slash + 1));
+			start = slash + 1;
+		}
+		return top;
+	}
+
+	/**
+	 * Complete every folder still open, including the root. Call once the listing is done.
+	 */
+	public void finish() {
+		while (!stack.isEmpty()) {
+			complete(stack.pop());
+		}
+	}
+
+	/**
+	 * Get the number of folders seen so far, including the root.
+	 */
+	public int getFolderCount() {
+		return folderCount;
+	}
+
+	private S3Folder push(S3Folder parent, String path) {
+		logger.trace(String.format("Opening folder %s", path));
+		S3Folder folder = new S3Folder(path);
+		if (parent != null) {
+			parent.addFolder(folder);
+		}
+		stack.push(folder);
+		folderCount++;
+		return folder;
+	}
+
+	private void complete(S3Folder folder) {
+		logger.trace(String.format("Closing folder %s", folder.getPath()));
+		listener.folderComplete(folder);
+		// The parent still needs the folder's name for its own index, but not what the folder holds.
+		folder.clear();
+	}
+
+}
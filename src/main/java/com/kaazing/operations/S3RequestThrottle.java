@@ -0,0 +1,352 @@
+package com.kaazing.operations;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Shared rate and concurrency controller for S3 requests.
+ *
+ * S3 scales request capacity per bucket and key prefix and answers with 503 SlowDown when a prefix is hit too hard. Every
+ * request goes through {@link #execute(String, String, S3Request)}, which paces it against the current rate for its bucket
+ * and prefix. The rate is found with AIMD (additive increase, multiplicative decrease): each success raises the rate a
+ * little, each throttling response halves it. Throttled requests are retried with full-jitter exponential backoff, and so
+ * are transient failures such as 500 InternalError or a dropped connection, which leave the rate alone.
+ *
+ * The controller only sees the request as an {@link S3Request}, so it can be exercised against a fake store that throws
+ * throttling errors instead of a real bucket.
+ */
+public class S3RequestThrottle {
+
+	/**
+	 * A single call against S3 (or anything pretending to be S3).
+	 */
+	public interface S3Request<T> {
+		T call() throws AmazonClientException;
+	}
+
+	/**
+	 * Pacing state for one key prefix. Guarded by its own monitor.
+	 */
+	private static class PrefixState {
+		/**
+		 * Current sustainable rate in requests per second.
+		 */
+		double rate;
+
+		/**
+		 * Earliest time, in nanoseconds, that the next request for this prefix may start.
+		 */
+		long nextRequestAt;
+
+		/**
+		 * Number of requests currently using this state. Guarded by the prefixes map, not this monitor.
+		 */
+		int users;
+
+		PrefixState(double rate) {
+			this.rate = rate;
+			this.nextRequestAt = System.nanoTime();
+		}
+	}
+
+	private final Logger logger = Logger.getLogger(S3RequestThrottle.class);
+
+	/**
+	 * Most prefixes are only busy while their folder is being read, so only the most recently used ones are kept. Prefixes
+	 * with requests in flight are never dropped, so a prefix never has two rates at once. A prefix that is used again after
+	 * being dropped starts over at the initial rate.
+	 */
+	static final int MAX_PREFIXES = 1000;
+
+	/**
+	 * Pacing state by bucket/prefix, least recently used first.
+	 */
+	private final LinkedHashMap<String, PrefixState> prefixes = new LinkedHashMap<String, PrefixState>(16, 0.75f, true);
+
+	private final Semaphore permits;
+
+	private final Random random;
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong throttledCount = new AtomicLong();
+
+	/**
+	 * Rate each new prefix starts at, in requests per second.
+	 */
+	private double initialRate = 50;
+
+	private double minRate = 1;
+
+	/**
+	 * S3 supports at least 3,500 writes and 5,500 reads per second per prefix, so there is no point probing past this.
+	 */
+	private double maxRate = 5500;
+
+	/**
+	 * Requests per second added to a prefix's rate after each successful request.
+	 */
+	private double increaseStep = 1;
+
+	/**
+	 * Factor the rate is multiplied by after a throttling response.
+	 */
+	private double decreaseFactor = 0.5;
+
+	private int maxRetries = 8;
+
+	/**
+	 * Base and ceiling for the exponential backoff between retries. In milliseconds.
+	 */
+	private long baseBackoff = 100;
+	private long maxBackoff = 20000;
+
+	public S3RequestThrottle(int maxConcurrency) {
+		this(maxConcurrency, new Random());
+	}
+
+	public S3RequestThrottle(int maxConcurrency, Random random) {
+		this.permits = new Semaphore(maxConcurrency, true);
+		this.random = random;
+	}
+
+	/**
+	 * Run the given request, paced against the rate for the prefix and retried if S3 throttles it or it fails with a
+	 * transient error. Any other error, or a retryable error once the retries are used up, is thrown to the caller.
+	 *
+	 * @param bucket
+	 *            the bucket the request targets. Each bucket has its own rates
+	 * @param prefix
+	 *            the key, or key prefix, the request targets
+	 */
+	public <T> T execute(String bucket, String prefix, S3Request<T> request) {
+		PrefixState state = checkOut(bucket + "/" + partitionOf(prefix));
+		try {
+			return executeWithRetries(bucket, prefix, request, state);
+		} finally {
+			checkIn(state);
+		}
+	}
+
+	private <T> T executeWithRetries(String bucket, String prefix, S3Request<T> request, PrefixState state) {
+		int attempt = 0;
+		while (true) {
+			acquire(state);
+			requestCount.incrementAndGet();
+			AmazonClientException failure;
+			boolean throttled = false;
+			try {
+				T result = request.call();
+				onSuccess(state);
+				return result;
+			} catch (AmazonServiceException ase) {
+				if (isThrottling(ase)) {
+					throttled = true;
+					throttledCount.incrementAndGet();
+				} else if (ase.getStatusCode() < 500) {
+					throw ase;
+				}
+				if (attempt >= maxRetries) {
+					throw ase;
+				}
+				failure = ase;
+			} catch (AmazonClientException ace) {
+				// The request never got an answer from S3, e.g. the connection was reset or timed out.
+				if (!ace.isRetryable() || attempt >= maxRetries) {
+					throw ace;
+				}
+				failure = ace;
+			} finally {
+				permits.release();
+			}
+
+			// Back off without holding a permit, so other prefixes can keep going. Only throttling says anything about the
+			// rate.
+			long backoff = backoff(attempt);
+			if (throttled) {
+				double rate = onThrottled(state);
+				logger.debug(String.format("S3 throttled request for %s/%s, rate now %.1f/s, retrying in %d ms", bucket, prefix,
+						rate, backoff));
+			} else {
+				logger.debug(String.format("S3 request for %s/%s failed (%s), retrying in %d ms", bucket, prefix,
+						failure.getMessage(), backoff));
+			}
+			sleep(backoff);
+			attempt++;
+		}
+	}
+
+	/**
+	 * Get the current rate for the given bucket and prefix, in requests per second.
+	 */
+	public double getRate(String bucket, String prefix) {
+		PrefixState state;
+		synchronized (prefixes) {
+			state = prefixes.get(bucket + "/" + partitionOf(prefix));
+		}
+		if (state == null) {
+			return initialRate;
+		}
+		synchronized (state) {
+			return state.rate;
+		}
+	}
+
+	/**
+	 * Get the number of requests sent to S3, including retries.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Get the number of requests S3 throttled, whether or not the retry succeeded.
+	 */
+	public long getThrottledCount() {
+		return throttledCount.get();
+	}
+
+	public void setInitialRate(double initialRate) {
+		this.initialRate = initialRate;
+	}
+
+	public void setMaxRate(double maxRate) {
+		this.maxRate = maxRate;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Set the base and ceiling for the backoff between retries. In milliseconds.
+	 */
+	public void setBackoff(long baseBackoff, long maxBackoff) {
+		this.baseBackoff = baseBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Reduce a key to the folder holding it. Keys in the same folder share a prefix, and therefore a rate.
+	 */
+	static String partitionOf(String key) {
+		int pos = key.lastIndexOf('/');
+		if (pos == -1) {
+			return "/";
+		}
+		return key.substring(0, pos + 1);
+	}
+
+	/**
+	 * S3 signals throttling with 503 SlowDown, but other 503s and the generic throttling codes mean the same thing.
+	 */
+	static boolean isThrottling(AmazonServiceException ase) {
+		if (ase.getStatusCode() == 503) {
+			return true;
+		}
+		String code = ase.getErrorCode();
+		return "SlowDown".equals(code) || "Throttling".equals(code) || "ThrottlingException".equals(code)
+				|| "RequestLimitExceeded".equals(code);
+	}
+
+	/**
+	 * Get the number of prefixes whose state is being kept.
+	 */
+	int getPrefixCount() {
+		synchronized (prefixes) {
+			return prefixes.size();
+		}
+	}
+
+	/**
+	 * Get the state for a partition, creating it if needed, and mark it as in use so it isn't dropped.
+	 */
+	private PrefixState checkOut(String partition) {
+		synchronized (prefixes) {
+			PrefixState state = prefixes.get(partition);
+			if (state == null) {
+				state = new PrefixState(initialRate);
+				prefixes.put(partition, state);
+			}
+			state.users++;
+			trim();
+			return state;
+		}
+	}
+
+	private void checkIn(PrefixState state) {
+		synchronized (prefixes) {
+			state.users--;
+		}
+	}
+
+	/**
+	 * Drop the least recently used idle states until there are no more than {@link #MAX_PREFIXES}. Must hold the prefixes
+	 * monitor.
+	 */
+	private void trim() {
+		Iterator<PrefixState> states = prefixes.values().iterator();
+		while (prefixes.size() > MAX_PREFIXES && states.hasNext()) {
+			if (states.next().users == 0) {
+				states.remove();
+			}
+		}
+	}
+
+	/**
+	 * Wait for this prefix's next slot, then take a concurrency permit.
+	 */
+	private void acquire(PrefixState state) {
+		long wait;
+		synchronized (state) {
+			long now = System.nanoTime();
+			long start = Math.max(now, state.nextRequestAt);
+			state.nextRequestAt = start + (long) (1000000000L / state.rate);
+			wait = start - now;
+		}
+		if (wait > 0) {
+			sleep(wait / 1000000L);
+		}
+		permits.acquireUninterruptibly();
+	}
+
+	private void onSuccess(PrefixState state) {
+		synchronized (state) {
+			state.rate = Math.min(maxRate, state.rate + increaseStep);
+		}
+	}
+
+	private double onThrottled(PrefixState state) {
+		synchronized (state) {
+			state.rate = Math.max(minRate, state.rate * decreaseFactor);
+			return state.rate;
+		}
+	}
+
+	/**
+	 * Full jitter: a random delay between zero and the capped exponential backoff for this attempt.
+	 */
+	private long backoff(int attempt) {
+		long ceiling = Math.min(maxBackoff, baseBackoff << Math.min(attempt, 20));
+		synchronized (random) {
+			return (long) (random.nextDouble() * ceiling);
+		}
+	}
+
+	private void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while waiting to retry S3 request", e);
+		}
+	}
+
+}
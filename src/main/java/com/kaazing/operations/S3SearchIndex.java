@@ -0,0 +1,313 @@
+package com.kaazing.operations;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+
+/**
+ * Client-side search index of the file names under the root, split into small shards so the browser only fetches what it
+ * needs.
+ *
+ * Each file name is broken into lower case words on anything that isn't a letter or digit, e.g. kaazing-gateway-5.0.zip
+ * gives kaazing, gateway, 5, 0 and zip. Words shorter than two characters aren't indexed. Words are sharded by their first
+ * two characters. A shard that would be bigger than the size limit is split on one more character, again and again, so a
+ * common word ends up in a small shard of its own instead of dragging its neighbours along. A shard is a JSON object holding
+ * the paths it refers to and, for each word, the positions of the paths that contain it:
+ *
+ * <pre>
+ * {"paths":["releases/kaazing-gateway-5.0.zip"],"words":{"gateway":[0]}}
+ * </pre>
+ *
+ * A word belongs to the longest shard name that is a prefix of it, unless it is longer than that name and the shard was split,
+ * in which case it is in one of the longer shards. The manifest, {@link #MANIFEST_FILENAME}, lists every shard and its size
+ * so search.js can tell which shards a query needs and which query word is the cheapest to look up:
+ *
+ * <pre>
+ * {"shards":{"ga":63,"ka":63}}
+ * </pre>
+ *
+ * Everything is written in a stable order, so an unchanged shard produces the same bytes on every run, and adding a file only
+ * changes the shards holding its words.
+ */
+public class S3SearchIndex {
+
+	/**
+	 * Number of leading characters of a word that pick its shard before any splitting. Also the shortest word that is indexed.
+	 */
+	public static final int SHARD_PREFIX_LENGTH = 2;
+
+	/**
+	 * Name of the file listing the shards. Shard names are only letters and digits, so it can't clash with one.
+	 */
+	public static final String MANIFEST_FILENAME = "_shards.json";
+
+	/**
+	 * Shards bigger than this, in bytes, are split on a longer prefix.
+	 */
+	public static final int DEFAULT_MAX_SHARD_BYTES = 32 * 1024;
+
+	/**
+	 * Where the index files are written to, e.g. the search folder of a bucket.
+	 */
+	public interface Store {
+		/**
+		 * @return true if the file was written
+		 */
+		boolean put(String filename, byte[] content);
+
+		/**
+		 * @return true if the file was deleted
+		 */
+		boolean delete(String filename);
+	}
+
+	/**
+	 * What {@link S3SearchIndex#upload(Map, Store)} did.
+	 */
+	public static class UploadResult {
+		private int uploaded = 0;
+		private int unchanged = 0;
+		private int deleted = 0;
+		private int failed = 0;
+
+		public int getUploaded() {
+			return uploaded;
+		}
+
+		public int getUnchanged() {
+			return unchanged;
+		}
+
+		public int getDeleted() {
+			return deleted;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+	}
+
+	private final int maxShardBytes;
+
+	/**
+	 * The paths containing each word, in the order they were listed.
+	 */
+	private final TreeMap<String, ArrayList<String>> words = new TreeMap<String, ArrayList<String>>();
+
+	public S3SearchIndex() {
+		this(DEFAULT_MAX_SHARD_BYTES);
+	}
+
+	public S3SearchIndex(int maxShardBytes) {
+		this.maxShardBytes = maxShardBytes;
+	}
+
+	/**
+	 * Index the given file.
+	 */
+	public void addFile(S3File file) {
+		// words() has no duplicates, so each file is added to a word at most once.
+		for (String word : words(file.getFilename())) {
+			if (word.length() < SHARD_PREFIX_LENGTH) {
+				continue;
+			}
+			ArrayList<String> paths = words.get(word);
+			if (paths == null) {
+				paths = new ArrayList<String>();
+				words.put(word, paths);
+			}
+			paths.add(file.getPath());
+		}
+	}
+
+	/**
+	 * Get the contents of every shard, as e.g. ga.json, and of the manifest, keyed by filename.
+	 */
+	public Map<String, byte[]> getFiles() {
+		TreeMap<String, byte[]> shards = new TreeMap<String, byte[]>();
+		String prefix = null;
+		TreeMap<String, ArrayList<String>> group = new TreeMap<String, ArrayList<String>>();
+		for (Entry<String, ArrayList<String>> entry : words.entrySet()) {
+			String wordPrefix = entry.getKey().substring(0, SHARD_PREFIX_LENGTH);
+			if (!wordPrefix.equals(prefix)) {
+				if (prefix != null) {
+					addShard(prefix, group, shards);
+				}
+				prefix = wordPrefix;
+				group = new TreeMap<String, ArrayList<String>>();
+			}
+			group.put(entry.getKey(), entry.getValue());
+		}
+		if (prefix != null) {
+			addShard(prefix, group, shards);
+		}
+
+		LinkedHashMap<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		StringBuilder manifest = new StringBuilder(500);
+		manifest.append("{\"shards\":{");
+		for (Entry<String, byte[]> shard : shards.entrySet()) {
+			if (!files.isEmpty()) {
+				manifest.append(',');
+			}
+			files.put(shard.getKey() + ".json", shard.getValue());
+			appendString(manifest, shard.getKey());
+			manifest.append(':').append(shard.getValue().length);
+		}
+		manifest.append("}}");
+		files.put(MANIFEST_FILENAME, manifest.toString().getBytes(StandardCharsets.UTF_8));
+		return files;
+	}
+
+	/**
+	 * Write the files that have changed since the last run, and delete the ones no longer needed.
+	 *
+	 * @param etags
+	 *            the ETags of the files already in the store, keyed by filename
+	 */
+	public UploadResult upload(Map<String, String> etags, Store store) {
+		UploadResult result = new UploadResult();
+		Map<String, byte[]> files = getFiles();
+		for (Entry<String, byte[]> file : files.entrySet()) {
+			// S3 uses the MD5 of the content as the ETag of a single part upload.
+			if (BinaryUtils.toHex(Md5Utils.computeMD5Hash(file.getValue())).equals(etags.get(file.getKey()))) {
+				result.unchanged++;
+			} else if (store.put(file.getKey(), file.getValue())) {
+				result.uploaded++;
+			} else {
+				result.failed++;
+			}
+		}
+		for (String filename : new TreeMap<String, String>(etags).keySet()) {
+			if (files.containsKey(filename)) {
+				continue;
+			}
+			if (store.delete(filename)) {
+				result.deleted++;
+			} else {
+				result.failed++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Split a file name into distinct lower case words. search.js splits queries the same way.
+	 */
+	static LinkedHashSet<String> words(String filename) {
+		LinkedHashSet<String> words = new LinkedHashSet<String>();
+		for (String word : filename.toLowerCase().split("[^a-z0-9]+")) {
+			if (!word.isEmpty()) {
+				words.add(word);
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Add the shard for the given words, all of which start with the prefix. If it is too big, the word equal to the prefix
+	 * (if any) keeps the shard, and the rest are split by their next character.
+	 */
+	private void addShard(String prefix, SortedMap<String, ArrayList<String>> group, Map<String, byte[]> shards) {
+		byte[] json = toJson(group);
+		if (json.length <= maxShardBytes || (group.size() == 1 && group.containsKey(prefix))) {
+			shards.put(prefix, json);
+			return;
+		}
+
+		TreeMap<String, ArrayList<String>> child = new TreeMap<String, ArrayList<String>>();
+		String childPrefix = null;
+		for (Entry<String, ArrayList<String>> entry : group.entrySet()) {
+			if (entry.getKey().equals(prefix)) {
+				TreeMap<String, ArrayList<String>> own = new TreeMap<String, ArrayList<String>>();
+				own.put(prefix, entry.getValue());
+				shards.put(prefix, toJson(own));
+				continue;
+			}
+			String wordPrefix = entry.getKey().substring(0, prefix.length() + 1);
+			if (!wordPrefix.equals(childPrefix)) {
+				if (childPrefix != null) {
+					addShard(childPrefix, child, shards);
+				}
+				childPrefix = wordPrefix;
+				child = new TreeMap<String, ArrayList<String>>();
+			}
+			child.put(entry.getKey(), entry.getValue());
+		}
+		if (childPrefix != null) {
+			addShard(childPrefix, child, shards);
+		}
+	}
+
+	private static byte[] toJson(SortedMap<String, ArrayList<String>> group) {
+		// Number the paths in the order they are first used, so the same words always give the same shard.
+		LinkedHashMap<String, Integer> ids = new LinkedHashMap<String, Integer>();
+		for (ArrayList<String> paths : group.values()) {
+			for (String path : paths) {
+				if (!ids.containsKey(path)) {
+					ids.put(path, ids.size());
+				}
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(500);
+		sb.append("{\"paths\":[");
+		boolean first = true;
+		for (String path : ids.keySet()) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			appendString(sb, path);
+		}
+		sb.append("],\"words\":{");
+		first = true;
+		for (Entry<String, ArrayList<String>> entry : group.entrySet()) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			appendString(sb, entry.getKey());
+			sb.append(":[");
+			for (int i = 0; i < entry.getValue().size(); i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(ids.get(entry.getValue().get(i)));
+			}
+			sb.append(']');
+		}
+		sb.append("}}");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void appendString(StringBuilder sb, String value) {
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+	}
+
+}
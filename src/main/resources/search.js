@@ -0,0 +1,164 @@
+/*
+ * Search box for the directory listing. Reads the list of search index shards from the folder named in data-index, fetches
+ * only the shards needed for the cheapest word of the query, and links matching files relative to data-base. The index
+ * format is described in S3SearchIndex.java.
+ */
+(function () {
+  var script = document.currentScript;
+  var base = script.getAttribute('data-base');
+  var index = script.getAttribute('data-index');
+  var box = document.getElementById('search-box');
+  var results = document.getElementById('search-results');
+
+  var shardPrefixLength = 2;
+  var maxResults = 100;
+  var manifest = null;
+  var files = {};
+
+  // Split text into lower case words the same way the index does.
+  function words(text) {
+    return text.toLowerCase().split(/[^a-z0-9]+/).filter(function (word) {
+      return word.length > 0;
+    });
+  }
+
+  function filename(path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  // Fetch and parse a JSON file from the index folder, once. Calls back with null if it can't be read.
+  function load(name, callback) {
+    if (files.hasOwnProperty(name)) {
+      callback(files[name]);
+      return;
+    }
+    var request = new XMLHttpRequest();
+    request.open('GET', index + name);
+    request.onload = function () {
+      files[name] = request.status === 200 ? JSON.parse(request.responseText) : null;
+      callback(files[name]);
+    };
+    request.onerror = function () {
+      callback(null);
+    };
+    request.send();
+  }
+
+  // The shards holding the words that start with the given word: the longest shard named by a prefix of the word, plus any
+  // longer shards it was split into that start with the word.
+  function shardsFor(word) {
+    var names = [];
+    var longest = '';
+    Object.keys(manifest.shards).forEach(function (name) {
+      if (word.indexOf(name) === 0) {
+        if (name.length > longest.length) {
+          longest = name;
+        }
+      } else if (name.indexOf(word) === 0) {
+        names.push(name);
+      }
+    });
+    if (longest) {
+      names.push(longest);
+    }
+    return names;
+  }
+
+  function size(names) {
+    return names.reduce(function (total, name) {
+      return total + manifest.shards[name];
+    }, 0);
+  }
+
+  function show(paths) {
+    results.innerHTML = '';
+    paths.slice(0, maxResults).forEach(function (path) {
+      var link = document.createElement('a');
+      link.href = base + path;
+      link.textContent = path;
+      var item = document.createElement('li');
+      item.appendChild(link);
+      results.appendChild(item);
+    });
+    if (paths.length > maxResults) {
+      var more = document.createElement('li');
+      more.textContent = '... and ' + (paths.length - maxResults) + ' more';
+      results.appendChild(more);
+    }
+  }
+
+  function search() {
+    var query = box.value;
+    var terms = words(query);
+
+    load('_shards.json', function (loaded) {
+      manifest = loaded;
+      if (box.value !== query) {
+        return; // The user kept typing, a newer search will show its own results.
+      }
+      if (!manifest) {
+        show([]);
+        return;
+      }
+
+      // Look up the word whose shards are smallest. The other words are matched against the names found.
+      var best = null;
+      var bestShards = null;
+      terms.forEach(function (term) {
+        if (term.length < shardPrefixLength) {
+          return;
+        }
+        var names = shardsFor(term);
+        if (bestShards === null || size(names) < size(bestShards)) {
+          best = term;
+          bestShards = names;
+        }
+      });
+      if (best === null) {
+        show([]);
+        return;
+      }
+
+      var shards = [];
+      var pending = bestShards.length;
+      if (pending === 0) {
+        show([]);
+        return;
+      }
+      bestShards.forEach(function (name) {
+        load(name + '.json', function (shard) {
+          if (shard) {
+            shards.push(shard);
+          }
+          pending--;
+          if (pending === 0 && box.value === query) {
+            show(match(shards, best, terms));
+          }
+        });
+      });
+    });
+  }
+
+  // Find the paths of the words starting with term in the given shards, keeping only those whose names hold every term.
+  function match(shards, term, terms) {
+    var found = {};
+    shards.forEach(function (shard) {
+      Object.keys(shard.words).forEach(function (word) {
+        if (word.indexOf(term) === 0) {
+          shard.words[word].forEach(function (id) {
+            found[shard.paths[id]] = true;
+          });
+        }
+      });
+    });
+
+    return Object.keys(found).filter(function (path) {
+      var name = filename(path).toLowerCase();
+      return terms.every(function (term) {
+        return name.indexOf(term) !== -1;
+      });
+    }).sort();
+  }
+
+  box.addEventListener('input', search);
+})();
@@ -0,0 +1,56 @@
+package com.kaazing.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class S3BatchListingTest {
+
+	@Test
+	public void splitsOnWhitespace() {
+		assertEquals(Arrays.asList("--bucket", "cdn.example.com", "--root", "public/releases", "--index"),
+				S3BatchListing.split("  --bucket cdn.example.com\t--root public/releases   --index "));
+	}
+
+	@Test
+	public void keepsQuotedSpaces() {
+		assertEquals(Arrays.asList("--root", "nightly builds", "-f", "my index.html"),
+				S3BatchListing.split("--root \"nightly builds\" -f 'my index.html'"));
+	}
+
+	@Test
+	public void keepsOtherQuoteInsideQuotes() {
+		assertEquals(Arrays.asList("--root", "bob's files", "-f", "say \"hi\".html"),
+				S3BatchListing.split("--root \"bob's files\" -f 'say \"hi\".html'"));
+	}
+
+	@Test
+	public void joinsQuotedPartOfWord() {
+		assertEquals(Arrays.asList("--root", "public/nightly builds/"),
+				S3BatchListing.split("--root public/\"nightly builds\"/"));
+	}
+
+	@Test
+	public void dropsComments() {
+		assertEquals(Collections.emptyList(), S3BatchListing.split("# Public releases"));
+		assertEquals(Arrays.asList("--bucket", "b", "--index"), S3BatchListing.split("--bucket b --index # Moved in 2016"));
+		assertEquals(Arrays.asList("--root", "a#b", "-f", "#1.html"), S3BatchListing.split("--root a#b -f '#1.html'"));
+	}
+
+	@Test
+	public void ignoresBlankLines() {
+		assertEquals(Collections.emptyList(), S3BatchListing.split(""));
+		assertEquals(Collections.emptyList(), S3BatchListing.split("   \t"));
+	}
+
+	@Test
+	public void rejectsUnclosedQuotes() {
+		assertNull(S3BatchListing.split("--root \"nightly builds"));
+		assertNull(S3BatchListing.split("--root 'nightly"));
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.kaazing.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+public class S3FolderStackTest {
+
+	/**
+	 * What each folder held when it was completed, in the order they were completed. e.g. "a/ [a/b/] [a/c.txt]"
+	 */
+	private List<String> completed;
+
+	private S3FolderStack stack;
+
+	@Before
+	public void setUp() {
+		completed = new ArrayList<String>();
+		stack = new S3FolderStack(folder -> completed.add(String.format("%s %s %s", folder.getPath(),
+				folder.getFolders().keySet(), folder.getFiles().keySet())));
+	}
+
+	/**
+	 * Feed keys to the stack the way S3DirectoryListing does: keys ending in / are folders, anything else is a file.
+	 */
+	private void list(String... keys) {
+		for (String key : keys) {
+			if (key.endsWith("/")) {
+				stack.enter(key);
+			} else {
+				int pos = key.lastIndexOf('/');
+				stack.enter(pos == -1 ? "/" : key.substring(0, pos + 1)).addFile(new S3File(key, new ObjectMetadata()));
+			}
+		}
+		stack.finish();
+	}
+
+	@Test
+	public void completesChildrenBeforeParents() {
+		list("pub/rel/1.0/x.zip", "pub/rel/1.0/y.zip", "pub/rel/2.0/z.zip", "pub/rel/r.txt");
+
+		assertEquals(Arrays.asList(
+				"pub/rel/1.0/ [] [pub/rel/1.0/x.zip, pub/rel/1.0/y.zip]",
+				"pub/rel/2.0/ [] [pub/rel/2.0/z.zip]",
+				"pub/rel/ [pub/rel/1.0/, pub/rel/2.0/] [pub/rel/r.txt]",
+				"pub/ [pub/rel/] []",
+				"/ [pub/] []"), completed);
+		assertEquals(5, stack.getFolderCount());
+	}
+
+	@Test
+	public void putsFilesWithoutSlashInRoot() {
+		list("a.txt", "pub/x.zip", "top.txt");
+
+		assertEquals(Arrays.asList(
+				"pub/ [] [pub/x.zip]",
+				"/ [pub/] [a.txt, top.txt]"), completed);
+	}
+
+	@Test
+	public void keepsSiblingPrefixesApart() {
+		list("a/x.txt", "ab/y.txt");
+
+		assertEquals(Arrays.asList(
+				"a/ [] [a/x.txt]",
+				"ab/ [] [ab/y.txt]",
+				"/ [a/, ab/] []"), completed);
+	}
+
+	@Test
+	public void keepsFolderOpenForFileSortedBeforeSubfolder() {
+		// '.' sorts before '/', so a/b.txt is listed before the contents of a/b/, and a/c.txt after them.
+		list("a/b.txt", "a/b/x.txt", "a/c.txt");
+
+		assertEquals(Arrays.asList(
+				"a/b/ [] [a/b/x.txt]",
+				"a/ [a/b/] [a/b.txt, a/c.txt]",
+				"/ [a/] []"), completed);
+	}
+
+	@Test
+	public void handlesFolderMarkerKeys() {
+		list("a/", "a/b/", "a/c.txt", "d/");
+
+		assertEquals(Arrays.asList(
+				"a/b/ [] []",
+				"a/ [a/b/] [a/c.txt]",
+				"d/ [] []",
+				"/ [a/, d/] []"), completed);
+		assertEquals(4, stack.getFolderCount());
+	}
+
+	@Test
+	public void reusesOpenFolder() {
+		S3Folder first = stack.enter("a/b/");
+		S3Folder second = stack.enter("a/b/");
+
+		assertSame(first, second);
+		assertEquals(3, stack.getFolderCount());
+	}
+
+	@Test
+	public void clearsCompletedFoldersButKeepsThemInParent() {
+		S3Folder child = stack.enter("a/b/");
+		child.addFile(new S3File("a/b/x.txt", new ObjectMetadata()));
+		S3Folder sibling = stack.enter("a/c/");
+
+		// Moving on to a/c/ completes a/b/.
+		assertEquals(Arrays.asList("a/b/ [] [a/b/x.txt]"), completed);
+		assertTrue(child.getFiles().isEmpty());
+
+		stack.finish();
+		assertTrue(sibling.getFiles().isEmpty());
+		assertEquals(Arrays.asList(
+				"a/b/ [] [a/b/x.txt]",
+				"a/c/ [] []",
+				"a/ [a/b/, a/c/] []",
+				"/ [a/] []"), completed);
+	}
+
+	@Test
+	public void completesNothingWhenNothingWasListed() {
+		list();
+
+		assertTrue(completed.isEmpty());
+		assertEquals(0, stack.getFolderCount());
+	}
+
+}
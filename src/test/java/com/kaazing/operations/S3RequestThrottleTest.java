@@ -0,0 +1,241 @@
+package com.kaazing.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+public class S3RequestThrottleTest {
+
+	private S3RequestThrottle throttle;
+
+	/**
+	 * Fake store that throttles the first few requests it gets, then answers them.
+	 */
+	private static class ThrottlingStore implements S3RequestThrottle.S3Request<String> {
+		private int throttledRequests;
+		private int calls = 0;
+
+		ThrottlingStore(int throttledRequests) {
+			this.throttledRequests = throttledRequests;
+		}
+
+		@Override
+		public String call() {
+			calls++;
+			if (calls <= throttledRequests) {
+				throw serviceException(503, "SlowDown");
+			}
+			return "ok";
+		}
+	}
+
+	private static AmazonServiceException serviceException(int statusCode, String errorCode) {
+		AmazonServiceException ase = new AmazonServiceException(errorCode);
+		ase.setStatusCode(statusCode);
+		ase.setErrorCode(errorCode);
+		return ase;
+	}
+
+	@Before
+	public void setUp() {
+		throttle = new S3RequestThrottle(4, new Random(42));
+		// Keep the pacing and backoff short so the tests run quickly.
+		throttle.setInitialRate(1000);
+		throttle.setBackoff(1, 5);
+	}
+
+	@Test
+	public void retriesUntilStoreStopsThrottling() {
+		ThrottlingStore store = new ThrottlingStore(3);
+
+		assertEquals("ok", throttle.execute("cdn.example.com", "releases/a.zip", store));
+		assertEquals(4, store.calls);
+		assertEquals(4, throttle.getRequestCount());
+		assertEquals(3, throttle.getThrottledCount());
+	}
+
+	@Test
+	public void rateHalvesOnThrottlingThenClimbs() {
+		throttle.execute("cdn.example.com", "releases/a.zip", new ThrottlingStore(1));
+		// Halved once, then one success.
+		assertEquals(501, throttle.getRate("cdn.example.com", "releases/"), 0.001);
+
+		throttle.execute("cdn.example.com", "releases/b.zip", new ThrottlingStore(2));
+		assertEquals(126.25, throttle.getRate("cdn.example.com", "releases/"), 0.001);
+
+		for (int i = 0; i < 10; i++) {
+			throttle.execute("cdn.example.com", "releases/c.zip", new ThrottlingStore(0));
+		}
+		assertEquals(136.25, throttle.getRate("cdn.example.com", "releases/"), 0.001);
+	}
+
+	@Test
+	public void rateIsKeptPerPrefix() {
+		throttle.execute("cdn.example.com", "releases/a.zip", new ThrottlingStore(1));
+
+		assertEquals(501, throttle.getRate("cdn.example.com", "releases/"), 0.001);
+		assertEquals(1000, throttle.getRate("cdn.example.com", "nightly/"), 0.001);
+	}
+
+	@Test
+	public void rateIsKeptPerBucket() {
+		throttle.execute("cdn.example.com", "releases/a.zip", new ThrottlingStore(1));
+
+		assertEquals(501, throttle.getRate("cdn.example.com", "releases/"), 0.001);
+		assertEquals(1000, throttle.getRate("downloads.example.com", "releases/"), 0.001);
+	}
+
+	@Test
+	public void dropsLeastRecentlyUsedPrefixes() {
+		for (int i = 0; i < S3RequestThrottle.MAX_PREFIXES + 100; i++) {
+			throttle.execute("cdn.example.com", "folder" + i + "/a.zip", new ThrottlingStore(0));
+		}
+
+		assertEquals(S3RequestThrottle.MAX_PREFIXES, throttle.getPrefixCount());
+		assertEquals(1001, throttle.getRate("cdn.example.com", "folder" + (S3RequestThrottle.MAX_PREFIXES + 99) + "/"), 0.001);
+		// Dropped, so back at the initial rate.
+		assertEquals(1000, throttle.getRate("cdn.example.com", "folder0/"), 0.001);
+	}
+
+	@Test
+	public void keepsPrefixesWithRequestsInFlight() {
+		throttle.execute("cdn.example.com", "busy/a.zip", new ThrottlingStore(1));
+
+		// While a request for busy/ is running, enough other prefixes are used to push it out of the map.
+		double rate = throttle.execute("cdn.example.com", "busy/b.zip", () -> {
+			for (int i = 0; i < S3RequestThrottle.MAX_PREFIXES + 100; i++) {
+				throttle.execute("cdn.example.com", "folder" + i + "/a.zip", new ThrottlingStore(0));
+			}
+			return throttle.getRate("cdn.example.com", "busy/");
+		});
+
+		assertEquals(501, rate, 0.001);
+		assertEquals(502, throttle.getRate("cdn.example.com", "busy/"), 0.001);
+	}
+
+	@Test
+	public void stopsRetryingAtMaxRetries() {
+		throttle.setMaxRetries(2);
+		ThrottlingStore store = new ThrottlingStore(Integer.MAX_VALUE);
+
+		try {
+			throttle.execute("cdn.example.com", "releases/a.zip", store);
+			fail("Expected the throttling error once the retries were used up");
+		} catch (AmazonServiceException ase) {
+			assertEquals("SlowDown", ase.getErrorCode());
+		}
+		assertEquals(3, store.calls);
+		assertEquals(3, throttle.getThrottledCount());
+	}
+
+	@Test
+	public void rethrowsOtherErrorsImmediately() {
+		final AmazonServiceException denied = serviceException(403, "AccessDenied");
+		final int[] calls = { 0 };
+
+		try {
+			throttle.execute("cdn.example.com", "releases/a.zip", () -> {
+				calls[0]++;
+				throw denied;
+			});
+			fail("Expected the AccessDenied error");
+		} catch (AmazonServiceException ase) {
+			assertSame(denied, ase);
+		}
+		assertEquals(1, calls[0]);
+		assertEquals(0, throttle.getThrottledCount());
+		assertEquals(1000, throttle.getRate("cdn.example.com", "releases/"), 0.001);
+	}
+
+	@Test
+	public void retriesServerErrorsWithoutSlowingDown() {
+		final int[] calls = { 0 };
+
+		String result = throttle.execute("cdn.example.com", "releases/a.zip", () -> {
+			calls[0]++;
+			if (calls[0] <= 2) {
+				throw serviceException(500, "InternalError");
+			}
+			return "ok";
+		});
+
+		assertEquals("ok", result);
+		assertEquals(3, calls[0]);
+		assertEquals(0, throttle.getThrottledCount());
+		assertEquals(1001, throttle.getRate("cdn.example.com", "releases/"), 0.001);
+	}
+
+	@Test
+	public void retriesConnectionFailures() {
+		final int[] calls = { 0 };
+
+		String result = throttle.execute("cdn.example.com", "releases/a.zip", () -> {
+			calls[0]++;
+			if (calls[0] == 1) {
+				throw new AmazonClientException("Unable to execute HTTP request", new IOException("Connection reset"));
+			}
+			return "ok";
+		});
+
+		assertEquals("ok", result);
+		assertEquals(2, calls[0]);
+		assertEquals(0, throttle.getThrottledCount());
+	}
+
+	@Test
+	public void rethrowsNonRetryableClientErrorsImmediately() {
+		final AmazonClientException error = new AmazonClientException("Unable to calculate MD5") {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public boolean isRetryable() {
+				return false;
+			}
+		};
+		final int[] calls = { 0 };
+
+		try {
+			throttle.execute("cdn.example.com", "releases/a.zip", () -> {
+				calls[0]++;
+				throw error;
+			});
+			fail("Expected the client error");
+		} catch (AmazonClientException ace) {
+			assertSame(error, ace);
+		}
+		assertEquals(1, calls[0]);
+	}
+
+	@Test
+	public void recognisesThrottlingErrors() {
+		assertTrue(S3RequestThrottle.isThrottling(serviceException(503, "SlowDown")));
+		assertTrue(S3RequestThrottle.isThrottling(serviceException(503, "ServiceUnavailable")));
+		assertTrue(S3RequestThrottle.isThrottling(serviceException(400, "Throttling")));
+		assertTrue(S3RequestThrottle.isThrottling(serviceException(400, "ThrottlingException")));
+		assertTrue(S3RequestThrottle.isThrottling(serviceException(400, "RequestLimitExceeded")));
+		assertFalse(S3RequestThrottle.isThrottling(serviceException(500, "InternalError")));
+		assertFalse(S3RequestThrottle.isThrottling(serviceException(403, "AccessDenied")));
+		assertFalse(S3RequestThrottle.isThrottling(serviceException(404, null)));
+	}
+
+	@Test
+	public void partitionsKeysByFolder() {
+		assertEquals("/", S3RequestThrottle.partitionOf(""));
+		assertEquals("/", S3RequestThrottle.partitionOf("index.css"));
+		assertEquals("releases/", S3RequestThrottle.partitionOf("releases/"));
+		assertEquals("releases/", S3RequestThrottle.partitionOf("releases/a.zip"));
+		assertEquals("releases/5.0/", S3RequestThrottle.partitionOf("releases/5.0/a.zip"));
+	}
+
+}
@@ -0,0 +1,211 @@
+package com.kaazing.operations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+
+public class S3SearchIndexTest {
+
+	private static S3SearchIndex index(int maxShardBytes, String... paths) {
+		S3SearchIndex index = new S3SearchIndex(maxShardBytes);
+		for (String path : paths) {
+			index.addFile(new S3File(path, new ObjectMetadata()));
+		}
+		return index;
+	}
+
+	private static String file(S3SearchIndex index, String filename) {
+		byte[] content = index.getFiles().get(filename);
+		return content == null ? null : new String(content, StandardCharsets.UTF_8);
+	}
+
+	private static String etag(byte[] content) {
+		return BinaryUtils.toHex(Md5Utils.computeMD5Hash(content));
+	}
+
+	@Test
+	public void splitsNamesIntoDistinctLowerCaseWords() {
+		assertEquals(Arrays.asList("kaazing", "gateway", "5", "0", "zip"),
+				new ArrayList<String>(S3SearchIndex.words("Kaazing-Gateway-5.0.zip")));
+		assertEquals(Arrays.asList("zip", "tar"), new ArrayList<String>(S3SearchIndex.words("zip.ZIP.tar.zip")));
+		assertEquals(Arrays.asList("caf", "notes"), new ArrayList<String>(S3SearchIndex.words("caf\u00e9 notes")));
+		assertEquals(Arrays.asList(), new ArrayList<String>(S3SearchIndex.words("-_.")));
+	}
+
+	@Test
+	public void writesShardsAndManifest() {
+		S3SearchIndex index = index(S3SearchIndex.DEFAULT_MAX_SHARD_BYTES, "rel/gateway-5.0.zip", "rel/gateway-docs.pdf");
+
+		assertEquals("{\"paths\":[\"rel/gateway-5.0.zip\",\"rel/gateway-docs.pdf\"],\"words\":{\"gateway\":[0,1]}}",
+				file(index, "ga.json"));
+		assertEquals("{\"paths\":[\"rel/gateway-docs.pdf\"],\"words\":{\"docs\":[0]}}", file(index, "do.json"));
+		// Single character words, like 5 and 0, aren't indexed.
+		assertEquals(Arrays.asList("do.json", "ga.json", "pd.json", "zi.json", S3SearchIndex.MANIFEST_FILENAME),
+				new ArrayList<String>(index.getFiles().keySet()));
+		assertEquals("{\"shards\":{\"do\":55,\"ga\":82,\"pd\":54,\"zi\":53}}", file(index, S3SearchIndex.MANIFEST_FILENAME));
+	}
+
+	@Test
+	public void sharesPathIdsBetweenWordsInAShard() {
+		S3SearchIndex index = index(S3SearchIndex.DEFAULT_MAX_SHARD_BYTES, "a/gateway-gamma.zip", "a/gamma.zip");
+
+		assertEquals("{\"paths\":[\"a/gateway-gamma.zip\",\"a/gamma.zip\"],\"words\":{\"gamma\":[0,1],\"gateway\":[0]}}",
+				file(index, "ga.json"));
+	}
+
+	@Test
+	public void addsFileToRepeatedWordOnce() {
+		S3SearchIndex index = index(S3SearchIndex.DEFAULT_MAX_SHARD_BYTES, "a/zip-zip.zip", "b/zip.zip");
+
+		assertEquals("{\"paths\":[\"a/zip-zip.zip\",\"b/zip.zip\"],\"words\":{\"zip\":[0,1]}}", file(index, "zi.json"));
+	}
+
+	@Test
+	public void escapesPaths() {
+		S3SearchIndex index = index(S3SearchIndex.DEFAULT_MAX_SHARD_BYTES, "a\\b/\"quoted\"\tname.\u00e9");
+
+		assertEquals("{\"paths\":[\"a\\\\b/\\\"quoted\\\"\\u0009name.\u00e9\"],\"words\":{\"quoted\":[0]}}",
+				file(index, "qu.json"));
+	}
+
+	@Test
+	public void splitsBigShardsOnLongerPrefixes() {
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			paths.add("rel/" + i + "/zip.zip");
+		}
+		paths.add("rel/zi.txt");
+		paths.add("rel/zinc.txt");
+		paths.add("rel/zipper.txt");
+		S3SearchIndex index = index(200, paths.toArray(new String[paths.size()]));
+
+		// zi is too big, so it keeps only the word equal to its name and the rest move to zin and zip. zip is still too big,
+		// so zipper moves on to zipp, but zip itself can't be split any further.
+		assertEquals("{\"paths\":[\"rel/zi.txt\"],\"words\":{\"zi\":[0]}}", file(index, "zi.json"));
+		assertEquals("{\"paths\":[\"rel/zinc.txt\"],\"words\":{\"zinc\":[0]}}", file(index, "zin.json"));
+		assertEquals("{\"paths\":[\"rel/zipper.txt\"],\"words\":{\"zipper\":[0]}}", file(index, "zipp.json"));
+		assertEquals(20, file(index, "zip.json").split("zip.zip").length - 1);
+		assertEquals(null, file(index, "zipper.json"));
+		String manifest = file(index, S3SearchIndex.MANIFEST_FILENAME);
+		assertEquals(true, manifest.contains("\"zi\":") && manifest.contains("\"zin\":") && manifest.contains("\"zip\":")
+				&& manifest.contains("\"zipp\":"));
+	}
+
+	@Test
+	public void keepsUnrelatedShardsUnchangedWhenFileIsAdded() {
+		Map<String, byte[]> before = index(200, "rel/gateway.zip", "rel/docs.pdf").getFiles();
+		Map<String, byte[]> after = index(200, "rel/gateway.zip", "rel/docs.pdf", "rel/readme.txt").getFiles();
+
+		assertArrayEquals(before.get("ga.json"), after.get("ga.json"));
+		assertArrayEquals(before.get("do.json"), after.get("do.json"));
+		assertArrayEquals(before.get("zi.json"), after.get("zi.json"));
+	}
+
+	@Test
+	public void uploadsOnlyChangedFilesAndDeletesStaleOnes() {
+		S3SearchIndex index = index(S3SearchIndex.DEFAULT_MAX_SHARD_BYTES, "rel/gateway.zip", "rel/docs.pdf");
+		Map<String, byte[]> files = index.getFiles();
+
+		Map<String, String> etags = new HashMap<String, String>();
+		etags.put("ga.json", etag(files.get("ga.json"))); // unchanged
+		etags.put("do.json", "0123456789abcdef0123456789abcdef"); // changed
+		etags.put("ka.json", "0123456789abcdef0123456789abcdef"); // no longer needed
+		etags.put("ol.json", "0123456789abcdef0123456789abcdef"); // no longer needed, and its delete fails
+
+		// Every request goes through the throttle to a fake store, which throttles the first request it gets.
+		final S3RequestThrottle throttle = new S3RequestThrottle(4, new Random(42));
+		throttle.setInitialRate(1000);
+		throttle.setBackoff(1, 5);
+		final List<String> puts = new ArrayList<String>();
+		final List<String> deletes = new ArrayList<String>();
+		final int[] calls = { 0 };
+		S3SearchIndex.UploadResult result = index.upload(etags, new S3SearchIndex.Store() {
+			private void call(String filename, List<String> log) {
+				throttle.execute("cdn.example.com", "_search/" + filename, () -> {
+					calls[0]++;
+					if (calls[0] == 1) {
+						AmazonServiceException ase = new AmazonServiceException("SlowDown");
+						ase.setStatusCode(503);
+						ase.setErrorCode("SlowDown");
+						throw ase;
+					}
+					if (filename.equals("ol.json")) {
+						AmazonServiceException ase = new AmazonServiceException("AccessDenied");
+						ase.setStatusCode(403);
+						ase.setErrorCode("AccessDenied");
+						throw ase;
+					}
+					log.add(filename);
+					return null;
+				});
+			}
+
+			@Override
+			public boolean put(String filename, byte[] content) {
+				call(filename, puts);
+				return true;
+			}
+
+			@Override
+			public boolean delete(String filename) {
+				try {
+					call(filename, deletes);
+					return true;
+				} catch (AmazonServiceException ase) {
+					return false;
+				}
+			}
+		});
+
+		assertEquals(Arrays.asList("do.json", "pd.json", "zi.json", S3SearchIndex.MANIFEST_FILENAME), puts);
+		assertEquals(Arrays.asList("ka.json"), deletes);
+		assertEquals(4, result.getUploaded());
+		assertEquals(1, result.getUnchanged());
+		assertEquals(1, result.getDeleted());
+		assertEquals(1, result.getFailed());
+		assertEquals(1, throttle.getThrottledCount());
+	}
+
+	@Test
+	public void uploadsNothingWhenEverythingIsUnchanged() {
+		S3SearchIndex index = index(S3SearchIndex.DEFAULT_MAX_SHARD_BYTES, "rel/gateway.zip");
+		Map<String, String> etags = new HashMap<String, String>();
+		for (Map.Entry<String, byte[]> file : index.getFiles().entrySet()) {
+			etags.put(file.getKey(), etag(file.getValue()));
+		}
+		final List<String> calls = new ArrayList<String>();
+
+		S3SearchIndex.UploadResult result = index.upload(etags, new S3SearchIndex.Store() {
+			@Override
+			public boolean put(String filename, byte[] content) {
+				calls.add("put " + filename);
+				return true;
+			}
+
+			@Override
+			public boolean delete(String filename) {
+				calls.add("delete " + filename);
+				return true;
+			}
+		});
+
+		assertEquals(Arrays.asList(), calls);
+		assertEquals(etags.size(), result.getUnchanged());
+		assertEquals(0, result.getUploaded());
+	}
+
+}